@@ -24,6 +24,7 @@ import org.apache.flume.Context;
 import org.apache.flume.Event;
 import org.apache.flume.interceptor.Interceptor;
 
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -37,6 +38,13 @@ import static pl.schibsted.flume.interceptor.json.JsonInterceptor.Constants.CONF
 import static pl.schibsted.flume.interceptor.json.JsonInterceptor.Constants.DEFAULT_SERIALIZER;
 import static pl.schibsted.flume.interceptor.json.JsonInterceptor.Constants.CONFIG_SERIALIZER_TYPE;
 import static pl.schibsted.flume.interceptor.json.JsonInterceptor.Constants.CONFIG_SERIALIZER_NAME;
+import static pl.schibsted.flume.interceptor.json.JsonInterceptor.Constants.CONFIG_COMPRESSION;
+import static pl.schibsted.flume.interceptor.json.JsonInterceptor.Constants.CONFIG_COMPRESSION_HEADER;
+import static pl.schibsted.flume.interceptor.json.JsonInterceptor.Constants.CONFIG_CHARSET;
+import static pl.schibsted.flume.interceptor.json.JsonInterceptor.Constants.CONFIG_CHARSET_HEADER;
+import static pl.schibsted.flume.interceptor.json.JsonInterceptor.Constants.CONFIG_MAX_BODY_SIZE;
+import static pl.schibsted.flume.interceptor.json.JsonInterceptor.Constants.CONFIG_REWRITE_BODY;
+import static pl.schibsted.flume.interceptor.json.JsonInterceptor.Constants.DEFAULT_MAX_BODY_SIZE;
 
 public class JsonInterceptor implements Interceptor {
     private static final Logger logger =
@@ -45,11 +53,20 @@ public class JsonInterceptor implements Interceptor {
     private String headerName;
     private String headerJSONPath;
     private final JsonInterceptorSerializer serializer;
+    private final JsonInterceptorBodyDecoder decoder;
+    private final boolean rewriteBody;
 
     public JsonInterceptor(String headerName, String headerJSONPath, JsonInterceptorSerializer serializer) {
+        this(headerName, headerJSONPath, serializer, new JsonInterceptorBodyDecoder(), false);
+    }
+
+    public JsonInterceptor(String headerName, String headerJSONPath, JsonInterceptorSerializer serializer,
+                           JsonInterceptorBodyDecoder decoder, boolean rewriteBody) {
         this.headerName = headerName;
         this.headerJSONPath = headerJSONPath;
         this.serializer = serializer;
+        this.decoder = decoder;
+        this.rewriteBody = rewriteBody;
     }
 
     @Override
@@ -60,14 +77,17 @@ public class JsonInterceptor implements Interceptor {
     public Event intercept(Event event) {
         try {
 
-            String body = new String(event.getBody(), Charsets.UTF_8);
             Map<String, String> headers = event.getHeaders();
+            JsonInterceptorBodyDecoder.DecodedBody body = decoder.decode(event.getBody(), headers);
             //String value = JsonPath.read(body, headerJSONPath);
             JsonPath namePath = JsonPath.compile(headerJSONPath);
-            String value  = namePath.read(body,String.class);
+            String value  = namePath.read(body.getBody(),String.class);
             if (value != null) {
                 headers.put(headerName, serializer.serialize(value));
             }
+            if (rewriteBody) {
+                decoder.rewrite(event, body);
+            }
 
         } catch (java.lang.ClassCastException e) {
             logger.warn("Skipping event due to: ClassCastException.", e);
@@ -92,6 +112,7 @@ public class JsonInterceptor implements Interceptor {
 
     @Override
     public void close() {
+        decoder.close();
     }
 
     public static class Builder implements Interceptor.Builder {
@@ -99,6 +120,12 @@ public class JsonInterceptor implements Interceptor {
         private String headerName;
         private String headerJSONPath;
         private JsonInterceptorSerializer serializer;
+        private String compression;
+        private String compressionHeader;
+        private Charset charset;
+        private String charsetHeader;
+        private int maxBodySize;
+        private boolean rewriteBody;
         private final JsonInterceptorSerializer defaultSerializer = new JsonInterceptorPassThroughSerializer();
 
         @Override
@@ -107,13 +134,30 @@ public class JsonInterceptor implements Interceptor {
             headerJSONPath = context.getString(CONFIG_HEADER_JSONPATH);
 
             configureSerializers(context);
+            configureDecoder(context);
         }
 
         @Override
         public JsonInterceptor build() {
             Preconditions.checkArgument(headerName != null, "Header name was misconfigured");
             Preconditions.checkArgument(headerJSONPath != null, "Header JSONPath was misconfigured");
-            return new JsonInterceptor(headerName, headerJSONPath, serializer);
+            JsonInterceptorBodyDecoder decoder = new JsonInterceptorBodyDecoder(compression, compressionHeader,
+                    charset, charsetHeader, maxBodySize);
+            return new JsonInterceptor(headerName, headerJSONPath, serializer, decoder, rewriteBody);
+        }
+
+        private void configureDecoder(Context context) {
+            compression = JsonInterceptorBodyDecoder.checkCompression(
+                    context.getString(CONFIG_COMPRESSION, JsonInterceptorBodyDecoder.COMPRESSION_NONE));
+            compressionHeader = context.getString(CONFIG_COMPRESSION_HEADER);
+            String charsetName = context.getString(CONFIG_CHARSET, Charsets.UTF_8.name());
+            charsetHeader = context.getString(CONFIG_CHARSET_HEADER);
+            maxBodySize = context.getInteger(CONFIG_MAX_BODY_SIZE, DEFAULT_MAX_BODY_SIZE);
+            rewriteBody = context.getBoolean(CONFIG_REWRITE_BODY, false);
+
+            Preconditions.checkArgument(Charset.isSupported(charsetName), "Unsupported charset: " + charsetName);
+            Preconditions.checkArgument(maxBodySize > 0, "Max body size must be positive");
+            charset = Charset.forName(charsetName);
         }
 
         private void configureSerializers(Context context) {
@@ -167,5 +211,12 @@ public class JsonInterceptor implements Interceptor {
         public static final String CONFIG_HEADER_JSONPATH = "jsonpath";
         public static final String CONFIG_SERIALIZER_TYPE = "type";
         public static final String CONFIG_SERIALIZER_NAME = "name";
+        public static final String CONFIG_COMPRESSION = "compression";
+        public static final String CONFIG_COMPRESSION_HEADER = "compressionHeader";
+        public static final String CONFIG_CHARSET = "charset";
+        public static final String CONFIG_CHARSET_HEADER = "charsetHeader";
+        public static final String CONFIG_MAX_BODY_SIZE = "maxBodySize";
+        public static final String CONFIG_REWRITE_BODY = "rewriteBody";
+        public static final int DEFAULT_MAX_BODY_SIZE = 16 * 1024 * 1024;
     }
 }
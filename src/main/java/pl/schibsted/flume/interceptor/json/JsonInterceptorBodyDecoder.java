@@ -0,0 +1,559 @@
+/*
+ * Copyright 2015 Schibsted Tech Polska Sp. z o.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package pl.schibsted.flume.interceptor.json;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import org.apache.commons.lang.StringUtils;
+import org.apache.flume.Event;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Turns a raw event body into a JSON string. Bodies may be gzip, zlib
+ * (deflate) or Snappy (raw or framed) compressed and encoded in any charset
+ * supported by the JVM. Compression and charset can be fixed in
+ * configuration, taken from an event header or detected from magic bytes /
+ * byte order mark.
+ *
+ * Inflaters and output buffers are pooled and reused between events.
+ */
+public class JsonInterceptorBodyDecoder {
+    private static final Logger logger =
+            LoggerFactory.getLogger(JsonInterceptorBodyDecoder.class);
+
+    public static final String COMPRESSION_NONE = "none";
+    public static final String COMPRESSION_GZIP = "gzip";
+    public static final String COMPRESSION_DEFLATE = "deflate";
+    public static final String COMPRESSION_SNAPPY = "snappy";
+    public static final String COMPRESSION_AUTO = "auto";
+
+    private static final int INITIAL_BUFFER_SIZE = 8192;
+    private static final int MAX_RETAINED_BUFFER_SIZE = 65536;
+
+    private static final int GZIP_FHCRC = 2;
+    private static final int GZIP_FEXTRA = 4;
+    private static final int GZIP_FNAME = 8;
+    private static final int GZIP_FCOMMENT = 16;
+    private static final int ZLIB_FDICT = 0x20;
+
+    private static final byte[] SNAPPY_STREAM_IDENTIFIER =
+            {(byte) 0xff, 0x06, 0x00, 0x00, 0x73, 0x4e, 0x61, 0x50, 0x70, 0x59};
+    private static final int SNAPPY_COMPRESSED_CHUNK = 0x00;
+    private static final int SNAPPY_UNCOMPRESSED_CHUNK = 0x01;
+    private static final int SNAPPY_FIRST_SKIPPABLE_CHUNK = 0x80;
+    private static final int SNAPPY_STREAM_IDENTIFIER_CHUNK = 0xff;
+
+    private static final String CHARSET_PARAMETER = "charset=";
+    private static final int[] CRC32C_TABLE = new int[256];
+
+    static {
+        for (int n = 0; n < CRC32C_TABLE.length; n++) {
+            int crc = n;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82f63b78 : crc >>> 1;
+            }
+            CRC32C_TABLE[n] = crc;
+        }
+    }
+
+    private final String compression;
+    private final String compressionHeader;
+    private final Charset charset;
+    private final String charsetHeader;
+    private final int maxBodySize;
+    private final int initialBufferSize;
+
+    private final Queue<Workspace> workspaces = new ConcurrentLinkedQueue<Workspace>();
+    private volatile boolean closed;
+
+    public JsonInterceptorBodyDecoder() {
+        this(COMPRESSION_NONE, null, Charsets.UTF_8, null, Integer.MAX_VALUE);
+    }
+
+    public JsonInterceptorBodyDecoder(String compression, String compressionHeader,
+                                      Charset charset, String charsetHeader, int maxBodySize) {
+        this.compression = checkCompression(compression);
+        this.compressionHeader = compressionHeader;
+        this.charset = charset;
+        this.charsetHeader = charsetHeader;
+        this.maxBodySize = maxBodySize;
+        this.initialBufferSize = Math.min(INITIAL_BUFFER_SIZE, maxBodySize);
+
+        Preconditions.checkArgument(!COMPRESSION_SNAPPY.equals(this.compression) || SnappyCodec.isAvailable(),
+                "Snappy codec is not available, snappy-java is missing from the classpath or cannot load");
+    }
+
+    public static String checkCompression(String compression) {
+        String normalized = StringUtils.trimToEmpty(compression).toLowerCase(Locale.ENGLISH);
+        if (COMPRESSION_NONE.equals(normalized) || COMPRESSION_GZIP.equals(normalized)
+                || COMPRESSION_DEFLATE.equals(normalized) || COMPRESSION_SNAPPY.equals(normalized)
+                || COMPRESSION_AUTO.equals(normalized)) {
+            return normalized;
+        }
+        if ("identity".equals(normalized) || normalized.isEmpty()) {
+            return COMPRESSION_NONE;
+        }
+        if ("x-gzip".equals(normalized)) {
+            return COMPRESSION_GZIP;
+        }
+        if ("x-snappy-framed".equals(normalized)) {
+            return COMPRESSION_SNAPPY;
+        }
+        throw new IllegalArgumentException("Unsupported compression: " + compression);
+    }
+
+    public DecodedBody decode(byte[] body, Map<String, String> headers) throws IOException {
+        String codec = resolveCompression(body, headers);
+        if (COMPRESSION_NONE.equals(codec)) {
+            Charset bodyCharset = resolveCharset(body, body.length, headers);
+            int bom = bomLength(body, body.length);
+            return new DecodedBody(new String(body, bom, body.length - bom, bodyCharset),
+                    bom > 0 || !Charsets.UTF_8.equals(bodyCharset));
+        }
+
+        Workspace workspace = acquire();
+        try {
+            int length;
+            if (COMPRESSION_GZIP.equals(codec)) {
+                length = gunzip(workspace, body);
+            } else if (COMPRESSION_DEFLATE.equals(codec)) {
+                length = inflateZlib(workspace, body);
+            } else {
+                length = unsnappy(workspace, body);
+            }
+            Charset bodyCharset = resolveCharset(workspace.buffer, length, headers);
+            int bom = bomLength(workspace.buffer, length);
+            return new DecodedBody(new String(workspace.buffer, bom, length - bom, bodyCharset), true);
+        } finally {
+            release(workspace);
+        }
+    }
+
+    /**
+     * Replaces event body with its decoded UTF-8 form and updates the
+     * compression and charset headers to match.
+     */
+    public void rewrite(Event event, DecodedBody decoded) {
+        if (!decoded.isTransformed()) {
+            return;
+        }
+        event.setBody(decoded.getBody().getBytes(Charsets.UTF_8));
+        Map<String, String> headers = event.getHeaders();
+        if (compressionHeader != null) {
+            headers.remove(compressionHeader);
+        }
+        if (charsetHeader != null && headers.containsKey(charsetHeader)) {
+            headers.put(charsetHeader, withUtf8Charset(headers.get(charsetHeader)));
+        }
+    }
+
+    public void close() {
+        closed = true;
+        drain();
+    }
+
+    private String resolveCompression(byte[] body, Map<String, String> headers) {
+        String codec = compression;
+        if (compressionHeader != null && headers.containsKey(compressionHeader)) {
+            codec = checkCompression(headers.get(compressionHeader));
+        }
+        if (!COMPRESSION_AUTO.equals(codec)) {
+            return codec;
+        }
+        if (body.length >= 2 && (body[0] & 0xff) == 0x1f && (body[1] & 0xff) == 0x8b) {
+            return COMPRESSION_GZIP;
+        }
+        if (startsWith(body, 0, SNAPPY_STREAM_IDENTIFIER)) {
+            return COMPRESSION_SNAPPY;
+        }
+        if (isZlibHeader(body)) {
+            return COMPRESSION_DEFLATE;
+        }
+        return COMPRESSION_NONE;
+    }
+
+    private Charset resolveCharset(byte[] bytes, int length, Map<String, String> headers) {
+        Charset bomCharset = bomCharset(bytes, length);
+        if (bomCharset != null) {
+            return bomCharset;
+        }
+        if (charsetHeader != null && headers.containsKey(charsetHeader)) {
+            String value = headers.get(charsetHeader);
+            int index = value.toLowerCase(Locale.ENGLISH).indexOf(CHARSET_PARAMETER);
+            if (index >= 0) {
+                value = StringUtils.substringBefore(value.substring(index + CHARSET_PARAMETER.length()), ";");
+            } else if (value.indexOf('/') >= 0) {
+                return charset;
+            }
+            value = StringUtils.strip(value, " \t\"'");
+            if (!StringUtils.isEmpty(value)) {
+                return Charset.forName(value);
+            }
+        }
+        return charset;
+    }
+
+    private static String withUtf8Charset(String value) {
+        int index = value.toLowerCase(Locale.ENGLISH).indexOf(CHARSET_PARAMETER);
+        if (index < 0) {
+            return value.indexOf('/') >= 0 ? value : Charsets.UTF_8.name();
+        }
+        int end = value.indexOf(';', index);
+        return value.substring(0, index + CHARSET_PARAMETER.length()) + Charsets.UTF_8.name()
+                + (end < 0 ? "" : value.substring(end));
+    }
+
+    private static Charset bomCharset(byte[] bytes, int length) {
+        if (length >= 3 && (bytes[0] & 0xff) == 0xef && (bytes[1] & 0xff) == 0xbb && (bytes[2] & 0xff) == 0xbf) {
+            return Charsets.UTF_8;
+        }
+        if (length >= 2 && (bytes[0] & 0xff) == 0xfe && (bytes[1] & 0xff) == 0xff) {
+            return Charsets.UTF_16BE;
+        }
+        if (length >= 2 && (bytes[0] & 0xff) == 0xff && (bytes[1] & 0xff) == 0xfe) {
+            return Charsets.UTF_16LE;
+        }
+        return null;
+    }
+
+    private static int bomLength(byte[] bytes, int length) {
+        Charset bomCharset = bomCharset(bytes, length);
+        if (bomCharset == null) {
+            return 0;
+        }
+        return Charsets.UTF_8.equals(bomCharset) ? 3 : 2;
+    }
+
+    private int gunzip(Workspace workspace, byte[] body) throws IOException {
+        int offset = 0;
+        int length = 0;
+        do {
+            offset = gzipHeaderEnd(body, offset);
+            int start = length;
+            length = inflate(workspace, body, offset, length);
+            offset = body.length - workspace.inflater.getRemaining();
+            checkAvailable(body, offset + 8);
+
+            workspace.crc.reset();
+            workspace.crc.update(workspace.buffer, start, length - start);
+            if (readIntLE(body, offset) != (int) workspace.crc.getValue()
+                    || readIntLE(body, offset + 4) != length - start) {
+                throw new IOException("Corrupt GZIP trailer");
+            }
+            offset += 8;
+        } while (offset < body.length);
+        return length;
+    }
+
+    private int gzipHeaderEnd(byte[] body, int offset) throws IOException {
+        if (body.length < offset + 10 || (body[offset] & 0xff) != 0x1f
+                || (body[offset + 1] & 0xff) != 0x8b || body[offset + 2] != 8) {
+            throw new IOException("Not in GZIP format");
+        }
+        int flags = body[offset + 3] & 0xff;
+        int pos = offset + 10;
+        if ((flags & GZIP_FEXTRA) != 0) {
+            checkAvailable(body, pos + 2);
+            pos += 2 + ((body[pos] & 0xff) | ((body[pos + 1] & 0xff) << 8));
+        }
+        if ((flags & GZIP_FNAME) != 0) {
+            pos = skipZeroTerminated(body, pos);
+        }
+        if ((flags & GZIP_FCOMMENT) != 0) {
+            pos = skipZeroTerminated(body, pos);
+        }
+        if ((flags & GZIP_FHCRC) != 0) {
+            pos += 2;
+        }
+        checkAvailable(body, pos);
+        return pos;
+    }
+
+    private int inflateZlib(Workspace workspace, byte[] body) throws IOException {
+        if (!isZlibHeader(body)) {
+            throw new IOException("Not in ZLIB format");
+        }
+        if ((body[1] & ZLIB_FDICT) != 0) {
+            throw new IOException("ZLIB preset dictionaries are not supported");
+        }
+        int length = inflate(workspace, body, 2, 0);
+        int offset = body.length - workspace.inflater.getRemaining();
+        checkAvailable(body, offset + 4);
+
+        workspace.adler.reset();
+        workspace.adler.update(workspace.buffer, 0, length);
+        if (readIntBE(body, offset) != (int) workspace.adler.getValue()) {
+            throw new IOException("Corrupt ZLIB trailer");
+        }
+        if (offset + 4 != body.length) {
+            throw new IOException("Unexpected data after ZLIB stream");
+        }
+        return length;
+    }
+
+    private static boolean isZlibHeader(byte[] body) {
+        return body.length >= 2 && (body[0] & 0x0f) == 8
+                && (((body[0] & 0xff) << 8) | (body[1] & 0xff)) % 31 == 0;
+    }
+
+    private int inflate(Workspace workspace, byte[] body, int offset, int length) throws IOException {
+        Inflater inflater = workspace.inflater;
+        inflater.reset();
+        inflater.setInput(body, offset, body.length - offset);
+        try {
+            while (!inflater.finished()) {
+                if (length == workspace.buffer.length) {
+                    ensureCapacity(workspace, length + 1L);
+                }
+                int inflated = inflater.inflate(workspace.buffer, length, workspace.buffer.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("Unexpected end of compressed body");
+                }
+                length += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException(e);
+        }
+        return length;
+    }
+
+    private int unsnappy(Workspace workspace, byte[] body) throws IOException {
+        if (!SnappyCodec.isAvailable()) {
+            throw new IOException("Snappy codec is not available");
+        }
+        if (!startsWith(body, 0, SNAPPY_STREAM_IDENTIFIER)) {
+            int length = SnappyCodec.uncompressedLength(body, 0, body.length);
+            ensureCapacity(workspace, length);
+            return SnappyCodec.uncompress(body, 0, body.length, workspace.buffer, 0);
+        }
+
+        int offset = 0;
+        int length = 0;
+        while (offset < body.length) {
+            checkAvailable(body, offset + 4);
+            int type = body[offset] & 0xff;
+            int chunkLength = (body[offset + 1] & 0xff) | ((body[offset + 2] & 0xff) << 8)
+                    | ((body[offset + 3] & 0xff) << 16);
+            checkAvailable(body, offset + 4 + chunkLength);
+
+            if (type == SNAPPY_COMPRESSED_CHUNK || type == SNAPPY_UNCOMPRESSED_CHUNK) {
+                if (chunkLength < 4) {
+                    throw new IOException("Corrupt Snappy chunk");
+                }
+                int dataOffset = offset + 8;
+                int dataLength = chunkLength - 4;
+                int start = length;
+                if (type == SNAPPY_COMPRESSED_CHUNK) {
+                    ensureCapacity(workspace, (long) length + SnappyCodec.uncompressedLength(body, dataOffset, dataLength));
+                    length += SnappyCodec.uncompress(body, dataOffset, dataLength, workspace.buffer, length);
+                } else {
+                    ensureCapacity(workspace, (long) length + dataLength);
+                    System.arraycopy(body, dataOffset, workspace.buffer, length, dataLength);
+                    length += dataLength;
+                }
+                if (readIntLE(body, offset + 4) != maskedCrc32c(workspace.buffer, start, length - start)) {
+                    throw new IOException("Corrupt Snappy chunk checksum");
+                }
+            } else if (type == SNAPPY_STREAM_IDENTIFIER_CHUNK) {
+                if (!startsWith(body, offset, SNAPPY_STREAM_IDENTIFIER)) {
+                    throw new IOException("Corrupt Snappy stream identifier");
+                }
+            } else if (type < SNAPPY_FIRST_SKIPPABLE_CHUNK) {
+                throw new IOException("Unsupported Snappy chunk type: " + type);
+            }
+            offset += 4 + chunkLength;
+        }
+        return length;
+    }
+
+    static int maskedCrc32c(byte[] bytes, int offset, int length) {
+        int crc = 0xffffffff;
+        for (int i = offset; i < offset + length; i++) {
+            crc = CRC32C_TABLE[(crc ^ bytes[i]) & 0xff] ^ (crc >>> 8);
+        }
+        crc = ~crc;
+        return ((crc >>> 15) | (crc << 17)) + 0xa282ead8;
+    }
+
+    private void ensureCapacity(Workspace workspace, long required) throws IOException {
+        if (required > maxBodySize) {
+            throw new IOException("Decompressed body exceeds " + maxBodySize + " bytes");
+        }
+        if (required > workspace.buffer.length) {
+            long size = Math.min(Math.max((long) workspace.buffer.length * 2, required), maxBodySize);
+            workspace.buffer = Arrays.copyOf(workspace.buffer, (int) size);
+        }
+    }
+
+    private static boolean startsWith(byte[] bytes, int offset, byte[] prefix) {
+        if (bytes.length < offset + prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipZeroTerminated(byte[] body, int pos) throws IOException {
+        while (pos < body.length && body[pos] != 0) {
+            pos++;
+        }
+        checkAvailable(body, pos + 1);
+        return pos + 1;
+    }
+
+    private static void checkAvailable(byte[] body, int length) throws IOException {
+        if (body.length < length) {
+            throw new IOException("Unexpected end of compressed body");
+        }
+    }
+
+    private static int readIntLE(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xff) | ((bytes[offset + 1] & 0xff) << 8)
+                | ((bytes[offset + 2] & 0xff) << 16) | ((bytes[offset + 3] & 0xff) << 24);
+    }
+
+    private static int readIntBE(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16)
+                | ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    private Workspace acquire() throws IOException {
+        if (closed) {
+            throw new IOException("Decoder is closed");
+        }
+        Workspace workspace = workspaces.poll();
+        return workspace != null ? workspace : new Workspace(initialBufferSize);
+    }
+
+    private void release(Workspace workspace) {
+        if (workspace.buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+            workspace.buffer = new byte[initialBufferSize];
+        }
+        if (closed) {
+            workspace.inflater.end();
+            return;
+        }
+        workspaces.offer(workspace);
+        if (closed) {
+            drain();
+        }
+    }
+
+    private void drain() {
+        Workspace workspace;
+        while ((workspace = workspaces.poll()) != null) {
+            workspace.inflater.end();
+        }
+    }
+
+    public static class DecodedBody {
+        private final String body;
+        private final boolean transformed;
+
+        DecodedBody(String body, boolean transformed) {
+            this.body = body;
+            this.transformed = transformed;
+        }
+
+        public String getBody() {
+            return body;
+        }
+
+        /**
+         * Returns true if the raw body was not plain UTF-8, i.e. rewriting
+         * it would change the bytes.
+         */
+        public boolean isTransformed() {
+            return transformed;
+        }
+    }
+
+    private static class Workspace {
+        private final Inflater inflater = new Inflater(true);
+        private final CRC32 crc = new CRC32();
+        private final Adler32 adler = new Adler32();
+        private byte[] buffer;
+
+        Workspace(int bufferSize) {
+            buffer = new byte[bufferSize];
+        }
+    }
+
+    /**
+     * Keeps all references to snappy-java (provided by the Flume runtime)
+     * in one place, so a missing or unloadable native library is reported
+     * as an error instead of failing class loading.
+     */
+    private static class SnappyCodec {
+        private static final boolean AVAILABLE = probe();
+
+        private static boolean probe() {
+            try {
+                Snappy.maxCompressedLength(1);
+                return true;
+            } catch (Exception e) {
+                logger.warn("Snappy codec could not be loaded.", e);
+                return false;
+            } catch (LinkageError e) {
+                logger.warn("Snappy codec could not be loaded.", e);
+                return false;
+            }
+        }
+
+        static boolean isAvailable() {
+            return AVAILABLE;
+        }
+
+        static int uncompressedLength(byte[] input, int offset, int length) throws IOException {
+            try {
+                return Snappy.uncompressedLength(input, offset, length);
+            } catch (Exception e) {
+                throw asIOException(e);
+            }
+        }
+
+        static int uncompress(byte[] input, int offset, int length, byte[] output, int outputOffset)
+                throws IOException {
+            try {
+                return Snappy.uncompress(input, offset, length, output, outputOffset);
+            } catch (Exception e) {
+                throw asIOException(e);
+            }
+        }
+
+        private static IOException asIOException(Exception e) {
+            return e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+}
@@ -19,8 +19,15 @@ import org.apache.flume.Context;
 import org.apache.flume.Event;
 import org.apache.flume.event.JSONEvent;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.xerial.snappy.Snappy;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -28,11 +35,15 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 
 @RunWith(JUnit4.class)
 public class JsonInterceptorTest {
 
+    // masked CRC32C of getDefaultEventBody() in UTF-8, as defined by the Snappy framing format
+    private static final int DEFAULT_EVENT_BODY_MASKED_CRC32C = 0xe3fb46c9;
+
     @Before
     public void prepare() {
     }
@@ -70,6 +81,49 @@ public class JsonInterceptorTest {
         return event;
     }
 
+    private Event getEvent(Map<String, String> headers, byte[] body) {
+        Event event = new JSONEvent();
+        event.setBody(body);
+        event.setHeaders(headers);
+        return event;
+    }
+
+    private byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        GZIPOutputStream gzip = new GZIPOutputStream(out);
+        gzip.write(bytes);
+        gzip.close();
+        return out.toByteArray();
+    }
+
+    private byte[] deflate(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        DeflaterOutputStream deflate = new DeflaterOutputStream(out);
+        deflate.write(bytes);
+        deflate.close();
+        return out.toByteArray();
+    }
+
+    private byte[] getSnappyFramedEventBody(int checksum) throws IOException {
+        byte[] compressed = Snappy.compress(getDefaultEventBody().getBytes("UTF-8"));
+        int chunkLength = compressed.length + 4;
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[]{(byte) 0xff, 0x06, 0x00, 0x00, 0x73, 0x4e, 0x61, 0x50, 0x70, 0x59});
+        out.write(new byte[]{0x00, (byte) chunkLength, (byte) (chunkLength >> 8), (byte) (chunkLength >> 16)});
+        out.write(new byte[]{(byte) checksum, (byte) (checksum >> 8), (byte) (checksum >> 16), (byte) (checksum >> 24)});
+        out.write(compressed);
+        return out.toByteArray();
+    }
+
+    private String getLargeEventBody() {
+        StringBuilder padding = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            padding.append((char) ('a' + i % 26));
+        }
+        return "{ \"padding\":\"" + padding + "\", \"published\":\"2015-04-24T01:37:09+00:00\" }";
+    }
+
     private Context getDefaultContext(String headerName, String headerJSONPath) {
         Context context = new Context();
         context.put("serializers", "s1");
@@ -320,4 +374,361 @@ public class JsonInterceptorTest {
                 interceptedEvent.getHeaders().get(headerName));
     }
 
+    @Test
+    public void testGzipBody() throws IOException {
+        String headerName = "testName";
+        String headerJSONPath = "$.published";
+
+        Map<String, String> headers = new HashMap<String, String>(1);
+        headers.put("existingKey", "existingValue");
+
+        byte[] body = gzip(getDefaultEventBody().getBytes("UTF-8"));
+        Event event = getEvent(headers, body);
+
+        Context context = getDefaultContext(headerName, headerJSONPath);
+        context.put("compression", "gzip");
+
+        JsonInterceptor interceptor = getInterceptor(context);
+
+        Event interceptedEvent = interceptor.intercept(event);
+
+        assertTrue("Event body should not have been altered",
+                Arrays.equals(body, interceptedEvent.getBody()));
+
+        assertEquals("Header's " + headerName + " should be correct",
+                "2015-04-23T01:37:09+00:00",
+                interceptedEvent.getHeaders().get(headerName));
+    }
+
+    @Test
+    public void testMultiMemberGzipBody() throws IOException {
+        String headerName = "testName";
+        String headerJSONPath = "$.published";
+
+        byte[] json = getDefaultEventBody().getBytes("UTF-8");
+        byte[] first = gzip(Arrays.copyOfRange(json, 0, json.length / 2));
+        byte[] second = gzip(Arrays.copyOfRange(json, json.length / 2, json.length));
+        byte[] body = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, body, first.length, second.length);
+
+        Context context = getDefaultContext(headerName, headerJSONPath);
+        context.put("compression", "gzip");
+
+        JsonInterceptor interceptor = getInterceptor(context);
+
+        Event interceptedEvent = interceptor.intercept(getEvent(new HashMap<String, String>(), body));
+
+        assertEquals("Header's " + headerName + " should be correct",
+                "2015-04-23T01:37:09+00:00",
+                interceptedEvent.getHeaders().get(headerName));
+    }
+
+    @Test
+    public void testAutoDetectedCompression() throws IOException {
+        String headerName = "testName";
+        String headerJSONPath = "$.published";
+
+        Context context = getDefaultContext(headerName, headerJSONPath);
+        context.put("compression", "auto");
+
+        JsonInterceptor interceptor = getInterceptor(context);
+
+        byte[][] bodies = {
+                deflate(getDefaultEventBody().getBytes("UTF-8")),
+                gzip(getDefaultEventBody().getBytes("UTF-8")),
+                getSnappyFramedEventBody(DEFAULT_EVENT_BODY_MASKED_CRC32C),
+                getDefaultEventBody().getBytes("UTF-8")
+        };
+        for (byte[] body : bodies) {
+            Map<String, String> headers = new HashMap<String, String>(1);
+            Event interceptedEvent = interceptor.intercept(getEvent(headers, body));
+
+            assertEquals("Header's " + headerName + " should be correct",
+                    "2015-04-23T01:37:09+00:00",
+                    interceptedEvent.getHeaders().get(headerName));
+        }
+    }
+
+    @Test
+    public void testSnappyBody() throws IOException {
+        String headerName = "testName";
+        String headerJSONPath = "$.published";
+
+        Context context = getDefaultContext(headerName, headerJSONPath);
+        context.put("compression", "snappy");
+
+        JsonInterceptor interceptor = getInterceptor(context);
+
+        byte[][] bodies = {
+                Snappy.compress(getDefaultEventBody().getBytes("UTF-8")),
+                getSnappyFramedEventBody(DEFAULT_EVENT_BODY_MASKED_CRC32C)
+        };
+        for (byte[] body : bodies) {
+            Map<String, String> headers = new HashMap<String, String>(1);
+            Event interceptedEvent = interceptor.intercept(getEvent(headers, body));
+
+            assertEquals("Header's " + headerName + " should be correct",
+                    "2015-04-23T01:37:09+00:00",
+                    interceptedEvent.getHeaders().get(headerName));
+        }
+    }
+
+    @Test
+    public void testCorruptSnappyFramedBodyShouldNotChangeEvent() throws IOException {
+        String headerName = "testName";
+        String headerJSONPath = "$.published";
+
+        byte[] body = getSnappyFramedEventBody(DEFAULT_EVENT_BODY_MASKED_CRC32C ^ 1);
+        Event event = getEvent(new HashMap<String, String>(), body);
+
+        Context context = getDefaultContext(headerName, headerJSONPath);
+        context.put("compression", "snappy");
+
+        JsonInterceptor interceptor = getInterceptor(context);
+
+        Event interceptedEvent = interceptor.intercept(event);
+
+        assertTrue("Event body should not have been altered",
+                Arrays.equals(body, interceptedEvent.getBody()));
+        assertFalse("Header should not contain " + headerName,
+                interceptedEvent.getHeaders().containsKey(headerName));
+    }
+
+    @Test
+    public void testClosingInterceptorDoesNotAffectOthersFromSameBuilder() throws IOException {
+        String headerName = "testName";
+        String headerJSONPath = "$.published";
+
+        Context context = getDefaultContext(headerName, headerJSONPath);
+        context.put("compression", "gzip");
+
+        JsonInterceptor.Builder interceptorBuilder = new JsonInterceptor.Builder();
+        interceptorBuilder.configure(context);
+        JsonInterceptor closed = interceptorBuilder.build();
+        JsonInterceptor interceptor = interceptorBuilder.build();
+        closed.close();
+
+        Event interceptedEvent = interceptor.intercept(
+                getEvent(new HashMap<String, String>(), gzip(getDefaultEventBody().getBytes("UTF-8"))));
+
+        assertEquals("Header's " + headerName + " should be correct",
+                "2015-04-23T01:37:09+00:00",
+                interceptedEvent.getHeaders().get(headerName));
+    }
+
+    @Test
+    public void testLargeBodyFollowedBySmallerOne() throws IOException {
+        String headerName = "testName";
+        String headerJSONPath = "$.published";
+
+        Context context = getDefaultContext(headerName, headerJSONPath);
+        context.put("compression", "gzip");
+
+        JsonInterceptor interceptor = getInterceptor(context);
+
+        Event largeEvent = interceptor.intercept(
+                getEvent(new HashMap<String, String>(), gzip(getLargeEventBody().getBytes("UTF-8"))));
+        Event smallEvent = interceptor.intercept(
+                getEvent(new HashMap<String, String>(), gzip(getDefaultEventBody().getBytes("UTF-8"))));
+
+        assertEquals("Header's " + headerName + " should be correct for large body",
+                "2015-04-24T01:37:09+00:00",
+                largeEvent.getHeaders().get(headerName));
+        assertEquals("Header's " + headerName + " should be correct for small body",
+                "2015-04-23T01:37:09+00:00",
+                smallEvent.getHeaders().get(headerName));
+    }
+
+    @Test
+    public void testMaxBodySizeExceededShouldNotChangeEvent() throws IOException {
+        String headerName = "testName";
+        String headerJSONPath = "$.published";
+
+        Map<String, String> headers = new HashMap<String, String>(1);
+        headers.put("existingKey", "existingValue");
+
+        byte[] body = gzip(getLargeEventBody().getBytes("UTF-8"));
+        Event event = getEvent(headers, body);
+
+        Context context = getDefaultContext(headerName, headerJSONPath);
+        context.put("compression", "gzip");
+        context.put("maxBodySize", "1000");
+        context.put("rewriteBody", "true");
+
+        JsonInterceptor interceptor = getInterceptor(context);
+
+        Event interceptedEvent = interceptor.intercept(event);
+
+        assertTrue("Event body should not have been altered",
+                Arrays.equals(body, interceptedEvent.getBody()));
+        assertFalse("Header should not contain " + headerName,
+                interceptedEvent.getHeaders().containsKey(headerName));
+    }
+
+    @Test
+    public void testCorruptGzipBodyShouldNotChangeEvent() throws IOException {
+        String headerName = "testName";
+        String headerJSONPath = "$.published";
+
+        byte[] valid = gzip(getDefaultEventBody().getBytes("UTF-8"));
+        byte[] truncated = Arrays.copyOf(valid, valid.length - 4);
+        byte[] badChecksum = Arrays.copyOf(valid, valid.length);
+        badChecksum[valid.length - 8] ^= 1;
+        byte[] trailingData = Arrays.copyOf(valid, valid.length + 1);
+
+        Context context = getDefaultContext(headerName, headerJSONPath);
+        context.put("compression", "gzip");
+
+        JsonInterceptor interceptor = getInterceptor(context);
+
+        for (byte[] body : new byte[][]{truncated, badChecksum, trailingData}) {
+            Event interceptedEvent = interceptor.intercept(getEvent(new HashMap<String, String>(), body));
+
+            assertTrue("Event body should not have been altered",
+                    Arrays.equals(body, interceptedEvent.getBody()));
+            assertFalse("Header should not contain " + headerName,
+                    interceptedEvent.getHeaders().containsKey(headerName));
+        }
+    }
+
+    @Test
+    public void testCompressionAndCharsetFromHeaders() throws IOException {
+        String headerName = "testName";
+        String headerJSONPath = "$.pageViewId";
+
+        Map<String, String> headers = new HashMap<String, String>(2);
+        headers.put("Content-Encoding", "gzip");
+        headers.put("Content-Type", "application/json; charset=ISO-8859-1");
+
+        String body = getDefaultEventBody().replace("4eae0122", "\u00e9t\u00e9");
+        Event event = getEvent(headers, gzip(body.getBytes("ISO-8859-1")));
+
+        Context context = getDefaultContext(headerName, headerJSONPath);
+        context.put("compressionHeader", "Content-Encoding");
+        context.put("charsetHeader", "Content-Type");
+
+        JsonInterceptor interceptor = getInterceptor(context);
+
+        Event interceptedEvent = interceptor.intercept(event);
+
+        assertEquals("Header's " + headerName + " should be correct",
+                "\u00e9t\u00e9-052d-41ff-ac5c-120279891184",
+                interceptedEvent.getHeaders().get(headerName));
+    }
+
+    @Test
+    public void testByteOrderMark() throws IOException {
+        String headerName = "testName";
+        String headerJSONPath = "$.published";
+
+        Context context = getDefaultContext(headerName, headerJSONPath);
+
+        JsonInterceptor interceptor = getInterceptor(context);
+
+        byte[][] bodies = {
+                ("\ufeff" + getDefaultEventBody()).getBytes("UTF-8"),
+                ("\ufeff" + getDefaultEventBody()).getBytes("UTF-16BE"),
+                ("\ufeff" + getDefaultEventBody()).getBytes("UTF-16LE")
+        };
+        for (byte[] body : bodies) {
+            Event interceptedEvent = interceptor.intercept(getEvent(new HashMap<String, String>(), body));
+
+            assertEquals("Header's " + headerName + " should be correct",
+                    "2015-04-23T01:37:09+00:00",
+                    interceptedEvent.getHeaders().get(headerName));
+        }
+    }
+
+    @Test
+    public void testUtf16BodyIsRewritten() throws IOException {
+        String headerName = "testName";
+        String headerJSONPath = "$.published";
+
+        Map<String, String> headers = new HashMap<String, String>(1);
+        headers.put("existingKey", "existingValue");
+
+        String body = getDefaultEventBody();
+        Event event = getEvent(headers, body.getBytes("UTF-16LE"));
+
+        Context context = getDefaultContext(headerName, headerJSONPath);
+        context.put("charset", "UTF-16LE");
+        context.put("rewriteBody", "true");
+
+        JsonInterceptor interceptor = getInterceptor(context);
+
+        Event interceptedEvent = interceptor.intercept(event);
+
+        assertEquals("Event body should have been rewritten as UTF-8",
+                body,
+                new String(interceptedEvent.getBody(), "UTF-8"));
+
+        assertEquals("Header's " + headerName + " should be correct",
+                "2015-04-23T01:37:09+00:00",
+                interceptedEvent.getHeaders().get(headerName));
+    }
+
+    @Test
+    public void testGzipBodyIsRewritten() throws IOException {
+        String headerName = "testName";
+        String headerJSONPath = "$.published";
+
+        Map<String, String> headers = new HashMap<String, String>(2);
+        headers.put("Content-Encoding", "gzip");
+        headers.put("Content-Type", "application/json; charset=UTF-16LE");
+
+        String body = getDefaultEventBody();
+        Event event = getEvent(headers, gzip(body.getBytes("UTF-16LE")));
+
+        Context context = getDefaultContext(headerName, headerJSONPath);
+        context.put("compressionHeader", "Content-Encoding");
+        context.put("charsetHeader", "Content-Type");
+        context.put("rewriteBody", "true");
+
+        JsonInterceptor interceptor = getInterceptor(context);
+
+        Event interceptedEvent = interceptor.intercept(event);
+
+        assertEquals("Event body should have been rewritten as UTF-8",
+                body,
+                new String(interceptedEvent.getBody(), "UTF-8"));
+        assertFalse("Compression header should have been removed",
+                interceptedEvent.getHeaders().containsKey("Content-Encoding"));
+        assertEquals("Charset header should have been updated",
+                "application/json; charset=UTF-8",
+                interceptedEvent.getHeaders().get("Content-Type"));
+    }
+
+    @Test
+    public void testMalformedBodyIsNotRewritten() throws IOException {
+        String headerName = "testName";
+        String headerJSONPath = "$.published";
+
+        Map<String, String> headers = new HashMap<String, String>(1);
+        headers.put("Content-Encoding", "gzip");
+
+        byte[] body = gzip(getInvalidEventBody().getBytes("UTF-8"));
+        Event event = getEvent(headers, body);
+
+        Context context = getDefaultContext(headerName, headerJSONPath);
+        context.put("compressionHeader", "Content-Encoding");
+        context.put("rewriteBody", "true");
+
+        JsonInterceptor interceptor = getInterceptor(context);
+
+        Event interceptedEvent = interceptor.intercept(event);
+
+        assertTrue("Event body should not have been altered",
+                Arrays.equals(body, interceptedEvent.getBody()));
+        assertEquals("Compression header should have been kept",
+                "gzip",
+                interceptedEvent.getHeaders().get("Content-Encoding"));
+    }
+
+    @Test(expected = java.lang.IllegalArgumentException.class)
+    public void testUnsupportedCompression() {
+        Context context = getDefaultContext("testName", "$.published");
+        context.put("compression", "lzo");
+
+        getInterceptor(context);
+    }
 }